@@ -6,20 +6,25 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** BluetoothConnectionService Class
- * This class manages bluetooth connections by 3 threads.
- * They are 3 inner classes (witch extend thread.class):
+ * This class manages bluetooth connections by 3 tasks.
+ * They are 3 inner classes (witch implement Runnable) executed by BluetoothExecutors:
  * - AcceptThread: runs while listening for incoming connections (server)
  * - ConnectThread: starts and attempts to make a connection (client)
  * - ConnectedThread: during connection send and receive data.
+ * AcceptThread and ConnectThread run on the connect-executor (blocking calls),
+ * ConnectedThread reader and writer run on the shared io-executor. (see BluetoothExecutors)
  *
  * This class let a double-side connection service (client & server) and can be used by both devices.
  * AccetpThread runs on both device by constructor and starts server-service in listening mode.
@@ -36,11 +41,15 @@ import java.util.UUID;
  * - constructor: get
  *        - context, create a new BluetoothAdapter (DefaultAdapter) and start AcceptThread.
  *        - IncomingMsgHandler: witch manages incoming-messages callback, to update activity-UI.
+ *        - threadPriority (optional): android thread-priority of bluetooth threads.
  *
  * - (synchronized) start: (invoked by constructor) start chat service (server-connection)
  * - startClient: get server device with UUID and start ConnectThread with it (client-connection)
  * - connected: this method is called by AccetpThread and ConnectThread, and start a new ConnectedThread to perform transmissions.
  * - write: this is a public method called by outside to invoke ConnectedThread.write(bytes) and send data.
+ *          Optionally with a key (latest-value-wins) and a max-age, after witch the message is dropped (see OutboundQueue).
+ * - setDeltaMode: (opt-in, on both devices) send repeated snapshots as deltas against the previous one (see DeltaCodec).
+ * - stop: close all sockets (unblocking accept/connect/read) and shutdown executors.
  *
  */
 
@@ -54,18 +63,36 @@ class BluetoothConnectionService {
     private final BluetoothAdapter mBluetoothAdapter;
     private Context mContext;
     private ProgressDialog mProgressDialog;     // starting connection progress-bar
-    // threads:
+    private final BluetoothExecutors mExecutors; // bounded thread pools (connect and io)
+    private final OutboundQueue mOutQueue = new OutboundQueue(); // outgoing messages (keys and deadlines)
+    private volatile boolean mDeltaMode;        // encode messages as deltas (see DeltaCodec)
+    private final AtomicLong mTrafficBytes = new AtomicLong(); // bytes read + written (see DiscoveryScheduler)
+    private final AtomicLong mWrittenBytes = new AtomicLong(); // bytes written to output-stream
+    private final AtomicLong mWriteNanos = new AtomicLong();   // time spent in output-stream write (link demand)
+    private volatile DiscoveryScheduler mDiscoveryScheduler;   // cancels discovery before connecting (optional)
+    private boolean mStopped;                   // set by stop(): no new connections (guarded by this)
+    // tasks:
     private AcceptThread mInsecureAcceptThread; // listens for incoming connections (server-socket)
     private ConnectThread mConnectThread;       // start client connection
-    private ConnectedThread mConnectedThread;   // manage active connection (input-output)
+    private volatile ConnectedThread mConnectedThread; // manage active connection (input-output)
     // other device parameters:
     private BluetoothDevice mmDevice;               // other device
     private IncomingMsgHandler incomingMsgHandler;  // incoming messages updater (for UI listener)
 
     // constructor:
     BluetoothConnectionService(Context mContext, IncomingMsgHandler handler) {
+        this(mContext, handler, new BluetoothExecutors());
+    }
+
+    // constructor with android thread-priority (Process.THREAD_PRIORITY_*) for bluetooth threads:
+    BluetoothConnectionService(Context mContext, IncomingMsgHandler handler, int threadPriority) {
+        this(mContext, handler, new BluetoothExecutors(threadPriority));
+    }
+
+    private BluetoothConnectionService(Context mContext, IncomingMsgHandler handler, BluetoothExecutors executors) {
         this.mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         this.mContext = mContext;
+        this.mExecutors = executors;
         incomingMsgHandler = handler;
         startServer(); // start AcceptThread mode (listening as Server for incoming connections):
     }
@@ -79,22 +106,29 @@ class BluetoothConnectionService {
         }
         if(mInsecureAcceptThread == null){              // if there is no old acceptThread
             mInsecureAcceptThread = new AcceptThread(); // create new acceptThread
-            mInsecureAcceptThread.start();              // start acceptThread.
+            mExecutors.connect().execute(mInsecureAcceptThread); // start acceptThread.
         }
     }
 
     // Start a connection (connectThread) with the other devices AcceptThread (client-mode):
-    void startClient(BluetoothDevice device){
+    synchronized void startClient(BluetoothDevice device){
         Log.d(TAG, "startClient - started.");
+        if(mStopped){
+            Log.d(TAG, "startClient - service stopped.");
+            return;
+        }
         // init progress-dialog:
         mProgressDialog = ProgressDialog.show(mContext,"connecting", "please wait..", true);
+        if(mConnectThread != null){     // cancel old connectThread (also if it is still queued)
+            mConnectThread.cancel();
+        }
         mConnectThread = new ConnectThread(device); // create new ConnectThread
-        mConnectThread.start();                           // start ConnectThread.
+        mExecutors.connect().execute(mConnectThread);     // start ConnectThread.
     }
 
     /** This thread runs while listening for incoming connections. It behaves like a server-side client.
      * It runs until a connection is accepted (or until cancelled). */
-    private class AcceptThread extends Thread{
+    private class AcceptThread implements Runnable{
         private final BluetoothServerSocket mmServerSocket; // The local server socket
         // Constructor creates a new bluetooth listening server socket (BluetoothServerSocket):
         AcceptThread(){
@@ -111,6 +145,10 @@ class BluetoothConnectionService {
         public void run(){
             Log.d(TAG, "run: acceptThread is running." );
             BluetoothSocket socket = null;
+            if(mmServerSocket == null){
+                Log.d(TAG, "run: RFCON server socket not available.");
+                return;
+            }
             // This is a blocking call and will only return on a successful connection or an exception
             try {
                 Log.d(TAG, "run: RFCOM server socket start..");
@@ -131,36 +169,53 @@ class BluetoothConnectionService {
             }
             Log.d(TAG, "end AcceptThread.");
         }
-        // close serverSocket. This method is not used because Server lets both-side connection.
-//        public void cancel() {
-//            Log.d(TAG, "cancel: cancelling AcceptThread");
-//            try {
-//                mmServerSocket.close();
-//            } catch (IOException e) {
-//                Log.e(TAG, "cancel: close of AcceptThread ServerSocket failed: " + e.getMessage());
-//            }
-//        }
+        // close serverSocket (unblocks accept). Used only by stop(), because Server lets both-side connection.
+        void cancel() {
+            Log.d(TAG, "cancel: cancelling AcceptThread");
+            if(mmServerSocket == null){
+                return;
+            }
+            try {
+                mmServerSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "cancel: close of AcceptThread ServerSocket failed: " + e.getMessage());
+            }
+        }
     }
 
      /** ConnectThread  starts and attempts to make a connection with other devices AcceptThread. */
-    private class ConnectThread extends Thread{
-        private BluetoothSocket mmSocket;
+    private class ConnectThread implements Runnable{
+        private final BluetoothDevice mmTarget;   // device of this task (mmDevice can be changed by a newer one)
+        private volatile BluetoothSocket mmSocket;
+        private volatile boolean mmCancelled;     // cancelled (maybe while still queued in connect-executor)
         ConnectThread(BluetoothDevice device) {
             Log.d(TAG, "ConnectThread started.");
             mmDevice = device;  // get other device and uuid
+            mmTarget = device;
         }
         // run creates a BluetoothSocket with the other device (server)
         public void run(){
             BluetoothSocket tmp = null;
             Log.d(TAG, "run: mConnectThread.");
+            if(mmCancelled){
+                Log.d(TAG, "run: ConnectThread cancelled before start.");
+                return;
+            }
             try {
                 Log.d(TAG, "ConnectThread: trying to create InsecureRFcommSocket using UUID:" + MY_UUID_INSECURE);
-                tmp = mmDevice.createRfcommSocketToServiceRecord(MY_UUID_INSECURE);
+                tmp = mmTarget.createRfcommSocketToServiceRecord(MY_UUID_INSECURE);
             } catch (IOException e) {
                 Log.d(TAG, "ConnectThread: could not create InsecureRFcommSocket" + e.getMessage());
             }
             mmSocket = tmp;
-            mBluetoothAdapter.cancelDiscovery(); // cancel discovery (it will slow down a connection)
+            if(mmSocket == null){
+                return;
+            }
+            if(mmCancelled){    // cancelled while socket was created (cancel could not close it)
+                cancel();
+                return;
+            }
+            cancelDiscovery(); // cancel discovery (it will slow down a connection)
             try {
                 mmSocket.connect(); // // Make a connection to the BluetoothSocket
                 Log.d(TAG, "run: ConnectThread: successful connected");
@@ -172,14 +227,26 @@ class BluetoothConnectionService {
                     Log.d(TAG,"ConnectThread run: unable to close connection in socket: "+ e.getMessage());
                 }
                 Log.d(TAG, "ConnectThread run: could not connect to UUID: " + MY_UUID_INSECURE);
+                return;
+            }
+            //connect client (unless cancelled: a stale task must not replace a newer connection):
+            synchronized (BluetoothConnectionService.this){
+                if(mmCancelled){
+                    cancel();
+                    return;
+                }
+                connected(mmSocket);
             }
-            //connect client:
-            connected(mmSocket);
         }
         // close client-socket (connection)
         void cancel(){
+            mmCancelled = true;
+            BluetoothSocket socket = mmSocket;
+            if(socket == null){
+                return;
+            }
             try {
-                mmSocket.close();
+                socket.close();
                 Log.d(TAG,"cancel: socket closed.");
             } catch (IOException ex) {
                 Log.d(TAG,"cancel: unable to close connection in socket: "+ ex.getMessage());
@@ -188,11 +255,18 @@ class BluetoothConnectionService {
     }
 
     /** ConnectedThread which is responsible for maintaining the BTConnection,
-     * Sending the data, and receiving incoming data through input/output streams respectively.**/
-    private class ConnectedThread extends Thread{
+     * Sending the data, and receiving incoming data through input/output streams respectively.
+     * run() is the reader. Outgoing data is queued in mOutQueue and sent by mmWriter,
+     * which is scheduled on the io-executor only while the queue is not empty.**/
+    private class ConnectedThread implements Runnable{
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        private boolean mmWriterScheduled;  // guarded by mOutQueue
+        private volatile boolean mmCancelled;
+        // delta-mode codecs (null if disabled). New for every connection, so streams restart with a keyframe:
+        private final DeltaCodec.Encoder mmEncoder;  // used only by mmWriter
+        private final DeltaCodec.Decoder mmDecoder;  // used only by reader
 
         ConnectedThread(BluetoothSocket mmSocket) {
             this.mmSocket = mmSocket;
@@ -209,13 +283,48 @@ class BluetoothConnectionService {
             }
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
+            mmEncoder = mDeltaMode ? new DeltaCodec.Encoder() : null;
+            mmDecoder = mDeltaMode ? new DeltaCodec.Decoder() : null;
+            if(mmEncoder != null && mmOutStream != null){
+                // handshake before any frame (this task is not published yet, so no writer is running):
+                try {
+                    mmOutStream.write(DeltaCodec.hello());
+                } catch (IOException e) {
+                    Log.d(TAG, "ConnectedThread: error writing delta-mode hello: " + e.getMessage());
+                }
+            }
         }
         public void run(){
             byte[] buffer = new byte[1024];
             int bytes;
-            while (true){
+            boolean firstRead = true;
+            while (!mmCancelled){
                 try {
                     bytes = mmInStream.read(buffer);
+                    if(bytes < 0){
+                        Log.d(TAG, "read: end of inputStream.");
+                        break;
+                    }
+                    mTrafficBytes.addAndGet(bytes);
+                    if(mmDecoder != null){
+                        // delta-mode: deliver only full messages rebuilt by decoder:
+                        List<byte[]> snapshots;
+                        try {
+                            snapshots = mmDecoder.feed(buffer, bytes);
+                        } catch (IOException e) {
+                            Log.e(TAG, "read: delta-mode error, closing connection: " + e.getMessage());
+                            break;
+                        }
+                        for(byte[] snapshot : snapshots){
+                            incomingMsgHandler.handleMessage(new String(snapshot));
+                        }
+                        continue;
+                    }
+                    if(firstRead && DeltaCodec.isHello(buffer, bytes)){
+                        Log.e(TAG, "read: other device is in delta-mode (this one is not), closing connection.");
+                        break;
+                    }
+                    firstRead = false;
                     String incomingMessage = new String(buffer, 0, bytes);
                     Log.d(TAG,"inputStream: " + incomingMessage);
                     //(incomingMessage);
@@ -226,20 +335,68 @@ class BluetoothConnectionService {
                     break;
                 }
             }
+            cancel(); // connection is dead: close socket and drop queued messages
         }
 
 
-        void write(byte[] bytes){
-            String text = new String(bytes, Charset.defaultCharset());
-            Log.d(TAG, " write: writing outputStream message: " + text);
-            try {
-                mmOutStream.write(bytes);
-            } catch (IOException e) {
-                Log.d(TAG, "write: error writing outputStream: " + e.getMessage());
+        // queue bytes and schedule the writer (if it is not already running).
+        // After cancel, messages are dropped (and counted) instead of queued:
+        void write(byte[] bytes, String key, long deadline){
+            synchronized (mOutQueue){
+                if(mmCancelled){
+                    mOutQueue.countDropped();
+                    return;
+                }
+                mOutQueue.offer(bytes, key, deadline);
+                if(mmWriterScheduled){
+                    return;
+                }
+                mmWriterScheduled = true;
             }
+            mExecutors.io().execute(mmWriter);
         }
 
+        // writer: send all queued messages still in time, then give back its io-thread to the pool.
+        private final Runnable mmWriter = new Runnable() {
+            @Override
+            public void run() {
+                while (true){
+                    OutboundQueue.Entry message;
+                    synchronized (mOutQueue){
+                        // expired messages are dropped here, just before reaching the output-stream:
+                        message = mmCancelled ? null : mOutQueue.poll(SystemClock.elapsedRealtime());
+                        if(message == null){
+                            mmWriterScheduled = false;
+                            return;
+                        }
+                    }
+                    byte[] bytes = message.bytes;
+                    String text = new String(bytes, Charset.defaultCharset());
+                    Log.d(TAG, " write: writing outputStream message: " + text);
+                    if(mmEncoder != null){
+                        // delta-mode: encoded here (after drops and replacements), against the last message really sent:
+                        bytes = mmEncoder.encode(message.key != null ? message.key : "", bytes);
+                    }
+                    try {
+                        long start = System.nanoTime();
+                        mmOutStream.write(bytes);
+                        mWriteNanos.addAndGet(System.nanoTime() - start);
+                        mWrittenBytes.addAndGet(bytes.length);
+                        mTrafficBytes.addAndGet(bytes.length);
+                    } catch (IOException e) {
+                        Log.d(TAG, "write: error writing outputStream: " + e.getMessage());
+                    }
+                }
+            }
+        };
+
         public void cancel(){
+            synchronized (mOutQueue){
+                if(!mmCancelled){   // only once: later the queue could hold messages of a new connection
+                    mmCancelled = true;
+                    mOutQueue.clear();  // messages queued for this connection are not sent (counted as dropped)
+                }
+            }
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -248,21 +405,117 @@ class BluetoothConnectionService {
         }
     }
 
-    private void connected(BluetoothSocket mmSocket) {
+    private synchronized void connected(BluetoothSocket mmSocket) {
         Log.d(TAG, "connected: starting.");
-        // start the thread to manage the connection and perform transmissions:
+        if(mStopped){   // socket returned just before stop(): io-executor is shut down
+            Log.d(TAG, "connected: service stopped, closing socket.");
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.d(TAG, "connected: unable to close socket: " + e.getMessage());
+            }
+            return;
+        }
+        cancelDiscovery(); // also for connections accepted as server
+        if(mConnectedThread != null){   // close old connection: its reader gives back the io-thread
+            mConnectedThread.cancel();
+        }
+        // start the task to manage the connection and perform transmissions:
         mConnectedThread = new ConnectedThread(mmSocket);
-        mConnectedThread.start();
+        mExecutors.io().execute(mConnectedThread);
+    }
+
+    // cancel discovery through scheduler (if set), so its state does not drift:
+    private void cancelDiscovery(){
+        DiscoveryScheduler scheduler = mDiscoveryScheduler;
+        if(scheduler != null){
+            scheduler.cancel();
+        } else {
+            mBluetoothAdapter.cancelDiscovery();
+        }
     }
 
     // write method for BluetoothConnectionService (invokes only ConnectedThread.write()):
     void write(byte[] out){
+        write(out, null, 0);
+    }
+
+    // write with latest-value-wins key (null for none) and max-age in ms (0 for none).
+    // A queued message with the same key is replaced, and the message is dropped if not sent within maxAgeMs.
+    void write(byte[] out, String key, long maxAgeMs){
         // perform the write unsynchronized (the write method of ConnectedThread is not reachable from outside):
         Log.d(TAG, "write: call write.");
-        mConnectedThread.write(out);
+        ConnectedThread connection = mConnectedThread;
+        if(connection == null){
+            Log.d(TAG, "write: no connection, message dropped.");
+            mOutQueue.countDropped();
+            return;
+        }
+        long deadline = maxAgeMs > 0 ? SystemClock.elapsedRealtime() + maxAgeMs : OutboundQueue.NO_DEADLINE;
+        connection.write(out, key, deadline);
+    }
+
+    void setDiscoveryScheduler(DiscoveryScheduler scheduler){
+        mDiscoveryScheduler = scheduler;
+    }
+
+    // total bytes read and written by connections (used to measure link throughput):
+    long getTrafficBytes(){
+        return mTrafficBytes.get();
+    }
+
+    // total bytes written, and time spent writing them (only while there was data to send):
+    long getWrittenBytes(){
+        return mWrittenBytes.get();
+    }
+
+    long getWriteNanos(){
+        return mWriteNanos.get();
+    }
+
+    // enable/disable delta-mode (it must be the same on both devices). It takes effect from the next connection.
+    void setDeltaMode(boolean deltaMode){
+        mDeltaMode = deltaMode;
+    }
+
+    // number of outgoing messages dropped because they were older than their max-age:
+    long getExpiredCount(){
+        return mOutQueue.getExpiredCount();
+    }
+
+    // number of outgoing messages dropped because there was no live connection (or it was closed):
+    long getDroppedCount(){
+        return mOutQueue.getDroppedCount();
+    }
+
+    // number of outgoing messages replaced by a newer message with the same key:
+    long getReplacedCount(){
+        return mOutQueue.getReplacedCount();
     }
 
     public void closeClient(){
-        mConnectedThread.cancel();
+        ConnectedThread connection = mConnectedThread;
+        if(connection != null){
+            connection.cancel();
+        }
+    }
+
+    // close all sockets (blocked accept/connect/read calls throw and return) and stop executors:
+    synchronized void stop(){
+        Log.d(TAG, "stop.");
+        mStopped = true;
+        if(mInsecureAcceptThread != null){
+            mInsecureAcceptThread.cancel();
+            mInsecureAcceptThread = null;
+        }
+        if(mConnectThread != null){
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+        if(mConnectedThread != null){
+            mConnectedThread.cancel();
+            mConnectedThread = null;
+        }
+        mExecutors.shutdown();
     }
 }
@@ -0,0 +1,90 @@
+package com.example.BluetoothPack;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** BluetoothExecutors
+ *  this class holds the (small and bounded) thread pools used by BluetoothConnectionService,
+ *  instead of starting a new Thread for every accept/connect/connection.
+ *  There are 2 executors:
+ *  - connect: runs the blocking calls of server-socket accept() and client-socket connect().
+ *             (2 threads: one listening as server and one connecting as client at the same time)
+ *  - io: runs the read-loop and the write-queue of the active connections.
+ *
+ *  Threads are named ("BT-connect-n", "BT-io-n") and run with the given android thread-priority
+ *  (see android.os.Process.THREAD_PRIORITY_*). Idle threads are kept alive, so the thread count
+ *  stays the same however many times devices connect and disconnect.
+ *  Blocking sockets are not interrupted by shutdown(): they must be closed first (see BluetoothConnectionService.stop).
+ */
+
+class BluetoothExecutors {
+    static final int CONNECT_POOL_SIZE = 2;  // accept + connect
+    static final int IO_POOL_SIZE = 4;       // reader + writer, for current and closing connection
+
+    private final ExecutorService connectExecutor;
+    private final ExecutorService ioExecutor;
+
+    // constructor: default priority (as plain threads). Background priority would throttle reader and writer.
+    BluetoothExecutors() {
+        this(Process.THREAD_PRIORITY_DEFAULT);
+    }
+
+    // constructor: threadPriority is an android thread-priority (Process.THREAD_PRIORITY_*).
+    BluetoothExecutors(int threadPriority) {
+        connectExecutor = newFixedPool("BT-connect", CONNECT_POOL_SIZE, threadPriority);
+        ioExecutor = newFixedPool("BT-io", IO_POOL_SIZE, threadPriority);
+    }
+
+    // executor for blocking accept/connect calls:
+    ExecutorService connect() {
+        return connectExecutor;
+    }
+
+    // executor shared by connection readers and writers:
+    ExecutorService io() {
+        return ioExecutor;
+    }
+
+    // stop both executors without waiting (it can be called by UI thread).
+    // Sockets must be already closed, so blocked threads return by themselves.
+    void shutdown() {
+        connectExecutor.shutdownNow();
+        ioExecutor.shutdownNow();
+    }
+
+    private static ExecutorService newFixedPool(String name, int size, int threadPriority) {
+        return new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name, threadPriority));
+    }
+
+    /** Creates named threads running with the given android thread-priority. */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+        private final String name;
+        private final int threadPriority;
+
+        NamedThreadFactory(String name, int threadPriority) {
+            this.name = name;
+            this.threadPriority = threadPriority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(threadPriority);
+                    r.run();
+                }
+            }, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Process;
 import android.util.Log;
 
 import java.nio.charset.Charset;
@@ -26,6 +27,7 @@ import java.util.UUID;
  * 1 - btEnable: switch on/off bluetooth service
  * 2 - btDiscoverable: set device discoverable by other devices. (for a limited time)
  * 3 - btFindDevices: enable finding-mode to discover other devices (witch are discoverable).
+ *     Scans are scheduled by DiscoveryScheduler: short windows, delayed while connection is busy, merged requests.
  * The only broadcast-receiver that automatically starts (in constructor) is the 4°,
  * because bond-receiver it is responsible for pairing actions that are automatics.
  *
@@ -39,7 +41,7 @@ import java.util.UUID;
  * The connection is a unsecure-connection (see documentation online) and it's made by the default UUID code.
  * For secure connection or other UUID this class could need some changes.
  *
- * The constructor need 2 parameters:
+ * The constructor need 2 parameters (and an optional android thread-priority for connection threads):
  * - Context: for register/unregister intent-filters and startActivity for Intents.
  * - IncomingMsgHandler: that is passed from activity to BluetoothConnectionService constructor class,
  *                       and it manages incoming-messages callback, to update activity-UI.
@@ -50,16 +52,25 @@ class BluetoothHelper {
     private static final UUID MY_UUID_INSECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
     BluetoothAdapter mBluetoothAdapter;
     BluetoothConnectionService mBluetoothConnection;
+    DiscoveryScheduler mDiscoveryScheduler;
     Context context;
     BluetoothDevice otherDevice;
     public ArrayList<BluetoothDevice> foundDevices = new ArrayList<>();
     public DeviceListAdapter mDeviceListAdapter;
 
     public BluetoothHelper(Context context, IncomingMsgHandler handler) {
+        this(context, handler, Process.THREAD_PRIORITY_DEFAULT);
+    }
+
+    // threadPriority: android thread-priority (Process.THREAD_PRIORITY_*) of bluetooth connection threads.
+    public BluetoothHelper(Context context, IncomingMsgHandler handler, int threadPriority) {
         this.context = context;
         this.mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         // BluetoothConnectionService (by constructor it runs AcceptThread for listening as server)
-        mBluetoothConnection = new BluetoothConnectionService(context, handler);
+        mBluetoothConnection = new BluetoothConnectionService(context, handler, threadPriority);
+        // discovery scheduler (scans only when connection traffic is low):
+        mDiscoveryScheduler = new DiscoveryScheduler(mBluetoothAdapter, mBluetoothConnection);
+        mBluetoothConnection.setDiscoveryScheduler(mDiscoveryScheduler);
 
         // devices-list adapter (see DeviceListAdaper.java):
         mDeviceListAdapter = new DeviceListAdapter(context, R.layout.device_adapter_view, foundDevices);
@@ -76,6 +87,38 @@ class BluetoothHelper {
         Log.d(TAG, " sent message: " + sendMsg);
     }
 
+    // send a message that replaces any queued message with the same key (null for none),
+    // and that is dropped if not sent within maxAgeMs (0 for none). Useful for live sensor readings.
+    public void btWrite(String sendMsg, String key, long maxAgeMs){
+        Log.d(TAG, " sent message: " + sendMsg + " (key: " + key + ", max-age: " + maxAgeMs + "ms)");
+        byte[] bytes = sendMsg.getBytes(Charset.defaultCharset());
+        mBluetoothConnection.write(bytes, key, maxAgeMs);
+    }
+
+    // opt-in delta-mode: messages with the same key (stream) are sent as deltas of the previous one.
+    // It must be enabled on both devices, before connecting (see DeltaCodec).
+    public void setDeltaMode(boolean deltaMode){
+        mBluetoothConnection.setDeltaMode(deltaMode);
+    }
+
+    // counters of outgoing messages dropped by max-age, dropped without connection, or replaced by key (see OutboundQueue):
+    public long getExpiredCount(){
+        return mBluetoothConnection.getExpiredCount();
+    }
+
+    public long getDroppedCount(){
+        return mBluetoothConnection.getDroppedCount();
+    }
+
+    public long getReplacedCount(){
+        return mBluetoothConnection.getReplacedCount();
+    }
+
+    // estimated bytes of connection throughput lost because of discovery scans (see DiscoveryScheduler):
+    public long getScanLostBytes(){
+        return mDiscoveryScheduler.getLostBytes();
+    }
+
 
     // ENABLE-DISABLE BLUETOOTH. (bluetooth state)
     void btEnable() {
@@ -106,17 +149,14 @@ class BluetoothHelper {
         context.registerReceiver(m2_BroadcastReceiverDiscovering, BTintent);
     }
 
-    // FIND DEVICES. (bluetooth action found). Needs BT-Adapter.startDiscovery.
+    // FIND DEVICES. (bluetooth action found). Discovery is started by DiscoveryScheduler.
     void btFindDevices() {
         Log.d(TAG, "discoveryDevices - Looking for unpaired devices.");
-        if (mBluetoothAdapter.isDiscovering()) {
-            Log.d(TAG, "discoveryDevices - Canceling discovery.");
-            mBluetoothAdapter.cancelDiscovery();
+        if (!mDiscoveryScheduler.isScanning()) {
             foundDevices.clear();
             mDeviceListAdapter.notifyDataSetChanged();
         }
-        Log.d(TAG, "discoveryDevices - Restarting discovery.");
-        mBluetoothAdapter.startDiscovery();
+        mDiscoveryScheduler.requestScan(); // merged if a scan is already waiting or running
         IntentFilter discoverDeviceIntent = new IntentFilter(BluetoothDevice.ACTION_FOUND);
         context.registerReceiver(m3_BroadcastReceiverFindDevices, discoverDeviceIntent);
     }
@@ -228,7 +268,7 @@ class BluetoothHelper {
     public void startClientConnection(int deviceNumber){
         BluetoothDevice serverDevice = foundDevices.get(deviceNumber);
         //first cancel discovery because its very memory intensive.
-        mBluetoothAdapter.cancelDiscovery();
+        mDiscoveryScheduler.cancel();
         Log.d(TAG, "onItemClick - You Clicked on a device:");
         Log.d(TAG, "onItemClick - deviceName = " + serverDevice.getName());
         Log.d(TAG, "onItemClick - deviceAddress = " +  serverDevice.getAddress());
@@ -238,6 +278,8 @@ class BluetoothHelper {
     }
 
     public void unregister(){
+        mDiscoveryScheduler.release();
+        mBluetoothConnection.stop(); // close sockets and stop connection threads
         context.unregisterReceiver(m1_BroadcastReceiverBtConnection);
         context.unregisterReceiver(m2_BroadcastReceiverDiscovering);
         context.unregisterReceiver(m3_BroadcastReceiverFindDevices);
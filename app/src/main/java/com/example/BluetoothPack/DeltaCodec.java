@@ -0,0 +1,329 @@
+package com.example.BluetoothPack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/** DeltaCodec
+ *  this class encodes repeated state-update messages (snapshots) as deltas against the previous snapshot
+ *  of the same stream (stream key). It is used by BluetoothConnectionService when delta-mode is enabled
+ *  (it must be enabled on both devices).
+ *  - Encoder: (writer side) keeps the last sent snapshot per stream and sends only the changed byte-ranges.
+ *             A full snapshot (keyframe) is sent for the first message of a stream, every keyframeInterval messages,
+ *             and when the delta would not be smaller than the snapshot.
+ *  - Decoder: (reader side) splits incoming bytes into frames and rebuilds the full snapshots.
+ *  Encoder and Decoder are created for every connection, so after a reconnect every stream restarts with a keyframe.
+ *  RFCOMM is reliable and ordered, so the last sent snapshot is the one the other device has (no ack needed).
+ *
+ *  Handshake: in delta-mode each device first sends HELLO (magic + VERSION). Decoder fails if the first bytes
+ *  are not a HELLO of the same version, and a plain-mode reader can detect a delta-mode device with isHello,
+ *  so a mode/version mismatch closes the connection instead of delivering garbage.
+ *
+ *  Frame format (varint = unsigned LEB128):
+ *  - varint body length, then body:
+ *  - byte type (KEYFRAME / DELTA), varint key length, key (UTF-8)
+ *  - KEYFRAME: snapshot bytes (rest of body).
+ *  - DELTA: varint ops count, then for each op: varint offset (from end of previous op, in old snapshot),
+ *           varint old length (bytes replaced), varint new length, new bytes.
+ */
+
+class DeltaCodec {
+    static final int DEFAULT_KEYFRAME_INTERVAL = 50;
+    static final byte VERSION = 1;
+    private static final byte[] HELLO_MAGIC = {0, 'B', 'P', 'D'};  // 0 is never the first byte of a text message
+    private static final byte KEYFRAME = 'K';
+    private static final byte DELTA = 'D';
+    private static final int MERGE_GAP = 4;               // unchanged bytes merged into a range (less than op overhead)
+    private static final int MAX_FRAME_SIZE = 1 << 20;    // bigger frames are considered corrupted
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private DeltaCodec() {
+    }
+
+    // handshake bytes, sent once before any frame:
+    static byte[] hello() {
+        byte[] hello = Arrays.copyOf(HELLO_MAGIC, HELLO_MAGIC.length + 1);
+        hello[HELLO_MAGIC.length] = VERSION;
+        return hello;
+    }
+
+    // true if bytes start with a delta-mode HELLO (any version). Used by plain-mode reader to detect a mismatch:
+    static boolean isHello(byte[] bytes, int count) {
+        if (count < HELLO_MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < HELLO_MAGIC.length; i++) {
+            if (bytes[i] != HELLO_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Encodes snapshots as frames (keyframe or delta). */
+    static class Encoder {
+        private final int keyframeInterval;
+        private final HashMap<String, byte[]> lastSnapshots = new HashMap<>();
+        private final HashMap<String, Integer> sinceKeyframe = new HashMap<>();
+
+        Encoder() {
+            this(DEFAULT_KEYFRAME_INTERVAL);
+        }
+
+        Encoder(int keyframeInterval) {
+            this.keyframeInterval = keyframeInterval;
+        }
+
+        // encode the snapshot of a stream as a frame, ready to be written in the output-stream:
+        byte[] encode(String stream, byte[] snapshot) {
+            byte[] key = stream.getBytes(UTF8);
+            byte[] base = lastSnapshots.get(stream);
+            Integer count = sinceKeyframe.get(stream);
+            byte[] body = null;
+            if (base != null && count != null && count < keyframeInterval) {
+                body = deltaBody(key, base, snapshot);
+            }
+            if (body == null || body.length >= snapshot.length + key.length + 2) {
+                body = keyframeBody(key, snapshot);
+                sinceKeyframe.put(stream, 1);
+            } else {
+                sinceKeyframe.put(stream, count + 1);
+            }
+            lastSnapshots.put(stream, snapshot);
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(body.length + 5);
+            writeVarint(frame, body.length);
+            frame.write(body, 0, body.length);
+            return frame.toByteArray();
+        }
+
+        private static byte[] keyframeBody(byte[] key, byte[] snapshot) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(snapshot.length + key.length + 2);
+            out.write(KEYFRAME);
+            writeVarint(out, key.length);
+            out.write(key, 0, key.length);
+            out.write(snapshot, 0, snapshot.length);
+            return out.toByteArray();
+        }
+
+        private static byte[] deltaBody(byte[] key, byte[] base, byte[] snapshot) {
+            List<int[]> ops = new ArrayList<>(); // {old offset, old length, new offset, new length}
+            if (base.length == snapshot.length) {
+                // same length: every run of changed bytes is an op (near runs are merged).
+                int i = 0;
+                while (i < base.length) {
+                    if (base[i] == snapshot[i]) {
+                        i++;
+                        continue;
+                    }
+                    int end = i + 1;
+                    int same = 0;
+                    for (int j = end; j < base.length && same <= MERGE_GAP; j++) {
+                        if (base[j] != snapshot[j]) {
+                            end = j + 1;
+                            same = 0;
+                        } else {
+                            same++;
+                        }
+                    }
+                    ops.add(new int[]{i, end - i, i, end - i});
+                    i = end;
+                }
+            } else {
+                // different length: a single op replacing everything between common prefix and common suffix.
+                int min = Math.min(base.length, snapshot.length);
+                int prefix = 0;
+                while (prefix < min && base[prefix] == snapshot[prefix]) {
+                    prefix++;
+                }
+                int suffix = 0;
+                while (suffix < min - prefix
+                        && base[base.length - 1 - suffix] == snapshot[snapshot.length - 1 - suffix]) {
+                    suffix++;
+                }
+                ops.add(new int[]{prefix, base.length - prefix - suffix, prefix, snapshot.length - prefix - suffix});
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(DELTA);
+            writeVarint(out, key.length);
+            out.write(key, 0, key.length);
+            writeVarint(out, ops.size());
+            int previousEnd = 0;
+            for (int[] op : ops) {
+                writeVarint(out, op[0] - previousEnd);
+                writeVarint(out, op[1]);
+                writeVarint(out, op[3]);
+                out.write(snapshot, op[2], op[3]);
+                previousEnd = op[0] + op[1];
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /** Splits incoming bytes into frames and rebuilds full snapshots. */
+    static class Decoder {
+        private final HashMap<String, byte[]> lastSnapshots = new HashMap<>();
+        private byte[] buffer = new byte[1024];
+        private int length;   // buffered bytes
+        private boolean helloReceived;
+
+        // add bytes read from the input-stream. Returns the snapshots completed by these bytes (maybe none):
+        List<byte[]> feed(byte[] bytes, int count) throws IOException {
+            if (length + count > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+            }
+            System.arraycopy(bytes, 0, buffer, length, count);
+            length += count;
+
+            List<byte[]> snapshots = new ArrayList<>();
+            int pos = 0;
+            if (!helloReceived) {
+                int helloLength = HELLO_MAGIC.length + 1;
+                int checked = Math.min(length, HELLO_MAGIC.length);
+                for (int i = 0; i < checked; i++) {
+                    if (buffer[i] != HELLO_MAGIC[i]) {
+                        throw new IOException("other device is not in delta-mode.");
+                    }
+                }
+                if (length < helloLength) {
+                    return snapshots;  // hello not complete yet
+                }
+                if (buffer[HELLO_MAGIC.length] != VERSION) {
+                    throw new IOException("delta-mode version mismatch: " + buffer[HELLO_MAGIC.length]
+                            + " (expected " + VERSION + ")");
+                }
+                helloReceived = true;
+                pos = helloLength;
+            }
+            while (pos < length) {
+                Cursor header = new Cursor(buffer, pos, length);
+                int bodyLength = header.readVarint();
+                if (bodyLength < 0) {
+                    break;  // header not complete yet
+                }
+                if (bodyLength > MAX_FRAME_SIZE) {
+                    throw new IOException("delta frame too big: " + bodyLength);
+                }
+                if (length - header.pos < bodyLength) {
+                    break;  // body not complete yet
+                }
+                byte[] snapshot = decodeBody(new Cursor(buffer, header.pos, header.pos + bodyLength));
+                if (snapshot != null) {
+                    snapshots.add(snapshot);
+                }
+                pos = header.pos + bodyLength;
+            }
+            // keep only the incomplete frame:
+            System.arraycopy(buffer, pos, buffer, 0, length - pos);
+            length -= pos;
+            return snapshots;
+        }
+
+        private byte[] decodeBody(Cursor body) throws IOException {
+            byte type = body.readByte();
+            String stream = new String(body.readBytes(body.readVarintChecked()), UTF8);
+            byte[] snapshot;
+            if (type == KEYFRAME) {
+                snapshot = body.readBytes(body.end - body.pos);
+            } else if (type == DELTA) {
+                byte[] base = lastSnapshots.get(stream);
+                if (base == null) {
+                    throw new IOException("delta frame without keyframe, stream: " + stream);
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream(base.length);
+                int ops = body.readVarintChecked();
+                int basePos = 0;
+                for (int i = 0; i < ops; i++) {
+                    long offset = (long) basePos + body.readVarintChecked();
+                    int oldLength = body.readVarintChecked();
+                    int newLength = body.readVarintChecked();
+                    if (offset + oldLength > base.length) {
+                        throw new IOException("delta frame out of range, stream: " + stream);
+                    }
+                    out.write(base, basePos, (int) offset - basePos);
+                    out.write(body.buffer, body.pos, checkAvailable(body, newLength));
+                    body.pos += newLength;
+                    basePos = (int) offset + oldLength;
+                }
+                out.write(base, basePos, base.length - basePos);
+                snapshot = out.toByteArray();
+            } else {
+                throw new IOException("unknown delta frame type: " + type);
+            }
+            lastSnapshots.put(stream, snapshot);
+            return snapshot;
+        }
+
+        private static int checkAvailable(Cursor cursor, int count) throws IOException {
+            if (count < 0 || cursor.end - cursor.pos < count) {
+                throw new IOException("delta frame truncated.");
+            }
+            return count;
+        }
+    }
+
+    // read position over a byte range:
+    private static class Cursor {
+        private final byte[] buffer;
+        private final int end;
+        private int pos;
+
+        Cursor(byte[] buffer, int pos, int end) {
+            this.buffer = buffer;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        // returns -1 if the varint is not complete:
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (pos >= end) {
+                    return -1;
+                }
+                byte b = buffer[pos++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        throw new IOException("delta frame malformed varint.");
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("delta frame malformed varint.");
+        }
+
+        int readVarintChecked() throws IOException {
+            int value = readVarint();
+            if (value < 0) {
+                throw new IOException("delta frame truncated.");
+            }
+            return value;
+        }
+
+        byte readByte() throws IOException {
+            if (pos >= end) {
+                throw new IOException("delta frame truncated.");
+            }
+            return buffer[pos++];
+        }
+
+        byte[] readBytes(int count) throws IOException {
+            Decoder.checkAvailable(this, count);
+            byte[] bytes = Arrays.copyOfRange(buffer, pos, pos + count);
+            pos += count;
+            return bytes;
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
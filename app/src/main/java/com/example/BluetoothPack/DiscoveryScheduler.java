@@ -0,0 +1,225 @@
+package com.example.BluetoothPack;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/** DiscoveryScheduler
+ *  this class coordinates device discovery (inquiry scan) with active connections,
+ *  because scanning while a connection is sending data slows down RFCOMM throughput a lot.
+ *  It is used by BluetoothHelper (btFindDevices) and by BluetoothConnectionService (cancel before connecting),
+ *  and its state is handled on UI thread (main looper).
+ *  - scans run in short windows (scanWindowMs) instead of a full inquiry.
+ *  - a scan waits while connection traffic is above busyBytesPerSec (checked every SAMPLE_MS),
+ *    but never more than MAX_DEFER_MS. A running scan is paused if traffic goes above threshold,
+ *    and it is resumed (for the rest of its window) when link is quiet again.
+ *    A scan forced by MAX_DEFER_MS is never paused, so it completes its window.
+ *    Traffic is sampled only while a scan is waiting or running.
+ *  - requests received while a scan is waiting or running are merged into it.
+ *  - scan cost is estimated only while the link had data to send: write throughput outside scans
+ *    (bytes written / time spent writing) gives the bytes the scan time spent writing should have sent,
+ *    minus the bytes really written. A quiet link costs nothing.
+ *    See getLostBytes, getScanMillis, getMergedRequests, getDeferredChecks.
+ *  Traffic is read from BluetoothConnectionService (getTrafficBytes, getWrittenBytes, getWriteNanos).
+ */
+
+class DiscoveryScheduler {
+    private static final String TAG = "DiscoveryScheduler";
+    static final long DEFAULT_SCAN_WINDOW_MS = 4000;
+    static final long DEFAULT_BUSY_BYTES_PER_SEC = 1024;
+    private static final long SAMPLE_MS = 500;
+    private static final long MAX_DEFER_MS = 30000;
+
+    private static final int IDLE = 0;
+    private static final int WAITING = 1;   // scan requested, waiting for a quiet link
+    private static final int SCANNING = 2;
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final BluetoothConnectionService mConnection;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final long scanWindowMs;
+    private final long busyBytesPerSec;
+
+    private int state = IDLE;
+    private boolean forced;         // current scan started by MAX_DEFER_MS (not paused)
+    private long requestTime;       // when current scan was requested (or paused)
+    private long scanStartTime;
+    private long windowLeftMs;      // scan time left for current request (paused scans)
+    private long lastSampleTime;
+    private long lastSampleBytes;
+    // written bytes and write time: at scan start, at previous sample, and total during scans:
+    private long scanStartWritten;
+    private long scanStartWriteNanos;
+    private long lastWritten;
+    private long lastWriteNanos;
+    private long scansWritten;
+    private long scansWriteNanos;
+    private double rateBeforeScan;  // write throughput outside scans (bytes/s while writing)
+    // statistics:
+    private long mergedRequests;
+    private long deferredChecks;
+    private long scanMillis;
+    private long lostBytes;
+
+    DiscoveryScheduler(BluetoothAdapter adapter, BluetoothConnectionService connection) {
+        this(adapter, connection, DEFAULT_SCAN_WINDOW_MS, DEFAULT_BUSY_BYTES_PER_SEC);
+    }
+
+    DiscoveryScheduler(BluetoothAdapter adapter, BluetoothConnectionService connection,
+                       long scanWindowMs, long busyBytesPerSec) {
+        this.mBluetoothAdapter = adapter;
+        this.mConnection = connection;
+        this.scanWindowMs = scanWindowMs;
+        this.busyBytesPerSec = busyBytesPerSec;
+    }
+
+    // request a scan: it starts when the link is quiet (merged if a scan is already waiting or running).
+    void requestScan() {
+        if (state != IDLE) {
+            mergedRequests++;
+            Log.d(TAG, "requestScan - merged with current scan.");
+            return;
+        }
+        Log.d(TAG, "requestScan - waiting for a quiet link.");
+        state = WAITING;
+        forced = false;
+        requestTime = SystemClock.elapsedRealtime();
+        windowLeftMs = scanWindowMs;
+        // first traffic sample, then sample every SAMPLE_MS until scan is done:
+        lastSampleTime = requestTime;
+        lastSampleBytes = mConnection.getTrafficBytes();
+        mHandler.postDelayed(mTick, SAMPLE_MS);
+    }
+
+    // cancel waiting or running scan (e.g. before connecting). It can be called by any thread:
+    // discovery is cancelled at once, scheduler state is updated on UI thread.
+    void cancel() {
+        mBluetoothAdapter.cancelDiscovery();
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mCancel.run();
+        } else {
+            mHandler.post(mCancel);
+        }
+    }
+
+    // cancel any scan and pending callbacks (UI thread):
+    void release() {
+        mHandler.removeCallbacks(mCancel);
+        mCancel.run();
+    }
+
+    boolean isScanning() {
+        return state == SCANNING;
+    }
+
+    private final Runnable mCancel = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.removeCallbacks(mTick);
+            if (state == SCANNING) {
+                stopScan(SystemClock.elapsedRealtime(), mConnection.getWrittenBytes(), mConnection.getWriteNanos());
+            }
+            state = IDLE;
+        }
+    };
+
+    // every SAMPLE_MS while waiting or scanning: measure traffic and decide.
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            long bytes = mConnection.getTrafficBytes();
+            long rate = (bytes - lastSampleBytes) * 1000 / Math.max(1, now - lastSampleTime);
+            long previousSampleTime = lastSampleTime;
+            lastSampleTime = now;
+            lastSampleBytes = bytes;
+            long written = mConnection.getWrittenBytes();
+            long writeNanos = mConnection.getWriteNanos();
+
+            if (state == WAITING) {
+                boolean deferLimit = now - requestTime >= MAX_DEFER_MS;
+                if (rate <= busyBytesPerSec || deferLimit) {
+                    startScan(now, deferLimit, written, writeNanos);
+                } else {
+                    deferredChecks++;
+                    Log.d(TAG, "scan delayed - link busy: " + rate + " B/s");
+                }
+            } else if (state == SCANNING) {
+                if (!forced && rate > busyBytesPerSec) {
+                    // this busy sample is not counted in scan (scan ends at previous sample):
+                    Log.d(TAG, "scan paused - link busy: " + rate + " B/s");
+                    stopScan(previousSampleTime, lastWritten, lastWriteNanos);
+                    state = WAITING;   // resume later for the rest of window
+                    requestTime = now;
+                } else if (now - scanStartTime >= windowLeftMs) {
+                    stopScan(now, written, writeNanos);
+                }
+            }
+            lastWritten = written;
+            lastWriteNanos = writeNanos;
+            if (state != IDLE) {
+                mHandler.postDelayed(this, SAMPLE_MS);
+            }
+        }
+    };
+
+    private void startScan(long now, boolean deferLimit, long written, long writeNanos) {
+        if (mBluetoothAdapter.isDiscovering()) {
+            mBluetoothAdapter.cancelDiscovery();
+        }
+        if (!mBluetoothAdapter.startDiscovery()) {
+            Log.d(TAG, "startScan - unable to start discovery.");
+            state = IDLE;
+            return;
+        }
+        Log.d(TAG, "startScan - window: " + windowLeftMs + "ms" + (deferLimit ? " (forced)." : "."));
+        state = SCANNING;
+        forced = deferLimit;
+        scanStartTime = now;
+        scanStartWritten = written;
+        scanStartWriteNanos = writeNanos;
+        // write throughput outside scans (0 if nothing was written yet: no cost can be estimated):
+        long outsideNanos = writeNanos - scansWriteNanos;
+        rateBeforeScan = outsideNanos > 0 ? (written - scansWritten) * 1e9 / outsideNanos : 0;
+    }
+
+    private void stopScan(long end, long written, long writeNanos) {
+        mBluetoothAdapter.cancelDiscovery();
+        long duration = Math.max(1, end - scanStartTime);
+        long scanWritten = written - scanStartWritten;
+        long scanWriteNanos = writeNanos - scanStartWriteNanos;
+        // bytes that the time spent writing during scan would have sent at throughput outside scans:
+        long lost = Math.max(0, Math.round(rateBeforeScan * scanWriteNanos / 1e9) - scanWritten);
+        scansWritten += scanWritten;
+        scansWriteNanos += scanWriteNanos;
+        scanMillis += duration;
+        lostBytes += lost;
+        windowLeftMs -= duration;
+        state = IDLE;
+        Log.d(TAG, "stopScan - " + duration + "ms, write throughput before: " + Math.round(rateBeforeScan)
+                + " B/s, written during: " + scanWritten + " bytes in " + scanWriteNanos / 1000000
+                + "ms, lost: " + lost + " bytes.");
+    }
+
+    // estimated bytes not transferred because of scans:
+    long getLostBytes() {
+        return lostBytes;
+    }
+
+    // total time spent scanning:
+    long getScanMillis() {
+        return scanMillis;
+    }
+
+    // scan requests merged into an already waiting/running scan:
+    long getMergedRequests() {
+        return mergedRequests;
+    }
+
+    // traffic checks that delayed a scan because link was busy:
+    long getDeferredChecks() {
+        return deferredChecks;
+    }
+}
@@ -2,13 +2,11 @@ package com.example.BluetoothPack;
 
 import android.Manifest;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
-import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
@@ -22,14 +20,14 @@ import androidx.core.app.ActivityCompat;
  *    - Button (4): on/off, discover, find, close.
  *    - ListView: show device-list found.
  *    - EditText: send messages to other paired device.
- *    - TextView: get incoming messages to other device.
+ *    - ListView: show last incoming messages from other device. (see MessageListAdapter)
  */
 
 public class MainActivity extends AppCompatActivity implements View.OnClickListener, AdapterView.OnItemClickListener, IncomingMsgHandler.OnMessageReceivedListener{
-    private static final String TAG = "MainActivity";
     ListView listfoundDevices;
     EditText sendText;
-    TextView receiveText;
+    ListView listReceivedMessages;
+    MessageListAdapter receivedMessagesAdapter;   // last received messages (ring buffer)
     // bluetooh service class
     BluetoothHelper btHelper;
     IncomingMsgHandler handler;
@@ -53,7 +51,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         Button btnSend = findViewById(R.id.btn_send);                   // send a message
         Button btnClose = findViewById(R.id.btn_close_connection_bt);   // close client-connection
         sendText = findViewById(R.id.et_send_text);                     // edit outgoing message
-        receiveText = findViewById(R.id.tw_received_msg);               // show incoming messages
+        listReceivedMessages = findViewById(R.id.lv_received_msg);      // show incoming messages
         listfoundDevices = findViewById(R.id.lv_found_devices);         // list found devices
         // click listeners
         btnOnOff.setOnClickListener(this);
@@ -63,6 +61,9 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         btnClose.setOnClickListener(this);
         listfoundDevices.setOnItemClickListener(this);
 
+        // adapter for incoming messages (before handler, that could receive messages):
+        receivedMessagesAdapter = new MessageListAdapter(this);
+        listReceivedMessages.setAdapter(receivedMessagesAdapter);
         // new handler for incoming messages (with listener-interface):
         handler = new IncomingMsgHandler(this);
         btHelper = new BluetoothHelper(this, handler);      // set new BluetoothHelper
@@ -109,9 +110,9 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         handler.clear();
     }
 
+    // called by bluetooth reader thread: message is shown at next frame (see MessageListAdapter).
     @Override
     public void handleMessage(String message) {
-        Log.d(TAG, "handled message: " + message);
-        receiveText.setText(message);
+        receivedMessagesAdapter.add(message);
     }
 }
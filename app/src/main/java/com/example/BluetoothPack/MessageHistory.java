@@ -0,0 +1,47 @@
+package com.example.BluetoothPack;
+
+/** MessageHistory
+ *  this is a fixed-capacity ring buffer of the last received messages (used by MessageListAdapter).
+ *  When it is full, a new message overwrites the oldest one, so memory stays the same
+ *  however many messages are received.
+ *  Positions go from 0 (oldest message kept) to size()-1 (newest message).
+ *  It is not thread-safe: it must be used only by UI thread.
+ */
+
+class MessageHistory {
+    private final String[] messages;
+    private int head;       // position of the oldest message in array
+    private int size;
+
+    MessageHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+        }
+        messages = new String[capacity];
+    }
+
+    void add(String message) {
+        int tail = (head + size) % messages.length;
+        messages[tail] = message;
+        if (size < messages.length) {
+            size++;
+        } else {
+            head = (head + 1) % messages.length;  // full: oldest message overwritten
+        }
+    }
+
+    String get(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("position: " + position + ", size: " + size);
+        }
+        return messages[(head + position) % messages.length];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return messages.length;
+    }
+}
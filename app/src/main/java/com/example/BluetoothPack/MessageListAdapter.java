@@ -0,0 +1,94 @@
+package com.example.BluetoothPack;
+
+import android.content.Context;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.util.ArrayDeque;
+
+/** MessageListAdapter
+ * This class is the received-messages list Adapter (for a ListView, that binds and recycles only visible rows).
+ * Messages are kept in a MessageHistory (fixed-capacity ring buffer), so memory and layout cost stay the same
+ * however many messages are received.
+ *
+ * add() can be called by any thread (e.g. by bluetooth reader through IncomingMsgHandler):
+ * messages are queued and moved into history once per frame (Choreographer), with a single notifyDataSetChanged.
+ * The adapter must be created by UI thread. It has own layout (message_adapter_view.xml).
+ */
+public class MessageListAdapter extends BaseAdapter {
+    static final int DEFAULT_CAPACITY = 500;
+    private final LayoutInflater mLayoutInflater;
+    private final MessageHistory mHistory;                          // used only by UI thread
+    private final ArrayDeque<String> mPending = new ArrayDeque<>(); // guarded by itself
+    private boolean mFrameScheduled;                                // guarded by mPending
+    private final Choreographer mChoreographer;
+
+    MessageListAdapter(Context context) {
+        this(context, DEFAULT_CAPACITY);
+    }
+
+    MessageListAdapter(Context context, int capacity) {
+        mLayoutInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        mHistory = new MessageHistory(capacity);
+        mChoreographer = Choreographer.getInstance(); // UI thread choreographer
+    }
+
+    // add a message (from any thread). It will be shown at next frame:
+    void add(String message) {
+        synchronized (mPending) {
+            mPending.add(message);
+            if (mPending.size() > mHistory.capacity()) {
+                mPending.poll(); // it would be overwritten in history anyway
+            }
+            if (mFrameScheduled) {
+                return;
+            }
+            mFrameScheduled = true;
+        }
+        mChoreographer.postFrameCallback(mFlush);
+    }
+
+    // once per frame: move pending messages into history and update list.
+    private final Choreographer.FrameCallback mFlush = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            synchronized (mPending) {
+                String message;
+                while ((message = mPending.poll()) != null) {
+                    mHistory.add(message);
+                }
+                mFrameScheduled = false;
+            }
+            notifyDataSetChanged();
+        }
+    };
+
+    @Override
+    public int getCount() {
+        return mHistory.size();
+    }
+
+    @Override
+    public String getItem(int position) {
+        return mHistory.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        // reuse recycled row if possible (only visible rows are bound):
+        if (convertView == null) {
+            convertView = mLayoutInflater.inflate(R.layout.message_adapter_view, parent, false);
+        }
+        ((TextView) convertView).setText(mHistory.get(position));
+        return convertView;
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.BluetoothPack;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/** OutboundQueue
+ *  this is the queue of outgoing messages of BluetoothConnectionService (filled by write, drained by ConnectedThread writer).
+ *  Each message can have:
+ *  - a key: "latest-value-wins". If a message with the same key is still queued, it is replaced by the new one
+ *           (the new value takes the place of the old one in the queue, so it is not delayed).
+ *  - a deadline: (SystemClock.elapsedRealtime ms) if the message is still queued after its deadline,
+ *                it is dropped by poll and never written to the output-stream.
+ *  Messages without key and deadline are sent in FIFO order as before.
+ *  Dropped and replaced messages are counted (see getExpiredCount, getDroppedCount, getReplacedCount).
+ */
+
+class OutboundQueue {
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final HashMap<String, Entry> queuedByKey = new HashMap<>(); // queued entries with a key
+    private long expiredCount;   // messages dropped because of deadline
+    private long replacedCount;  // messages replaced by a newer one with the same key
+    private long droppedCount;   // messages cleared or written without a live connection
+
+    // add a message (or replace a queued message with the same key):
+    synchronized void offer(byte[] bytes, String key, long deadline) {
+        if (key != null) {
+            Entry old = queuedByKey.get(key);
+            if (old != null) {
+                old.bytes = bytes;
+                old.deadline = deadline;
+                replacedCount++;
+                return;
+            }
+        }
+        Entry entry = new Entry(bytes, key, deadline);
+        queue.add(entry);
+        if (key != null) {
+            queuedByKey.put(key, entry);
+        }
+    }
+
+    // get the next message still in time (now is SystemClock.elapsedRealtime), or null if queue is empty:
+    synchronized Entry poll(long now) {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            if (entry.key != null) {
+                queuedByKey.remove(entry.key);
+            }
+            if (now > entry.deadline) {
+                expiredCount++;
+                continue;
+            }
+            return entry;
+        }
+        return null;
+    }
+
+    // remove all queued messages (connection closed). They are counted as dropped:
+    synchronized void clear() {
+        droppedCount += queue.size();
+        queue.clear();
+        queuedByKey.clear();
+    }
+
+    // count a message not queued because there is no live connection:
+    synchronized void countDropped() {
+        droppedCount++;
+    }
+
+    synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    synchronized long getReplacedCount() {
+        return replacedCount;
+    }
+
+    // queued message (bytes and deadline are updated when replaced by key):
+    static class Entry {
+        byte[] bytes;
+        final String key;
+        private long deadline;
+
+        Entry(byte[] bytes, String key, long deadline) {
+            this.bytes = bytes;
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+}
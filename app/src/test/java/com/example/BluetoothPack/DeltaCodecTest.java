@@ -0,0 +1,199 @@
+package com.example.BluetoothPack;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for DeltaCodec (encoder/decoder round-trip, keyframes, malformed input).
+ */
+public class DeltaCodecTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void roundTrip_splitReads() throws IOException {
+        Random random = new Random(1);
+        List<String> sent = new ArrayList<>();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        writeSensorStream(new DeltaCodec.Encoder(), random, 2000, sent, wire);
+
+        // feed the stream in random small chunks (as read() could return):
+        DeltaCodec.Decoder decoder = new DeltaCodec.Decoder();
+        byte[] bytes = wire.toByteArray();
+        List<String> received = new ArrayList<>();
+        int pos = 0;
+        while (pos < bytes.length) {
+            int count = Math.min(bytes.length - pos, 1 + random.nextInt(7));
+            received.addAll(toStrings(decoder.feed(Arrays.copyOfRange(bytes, pos, pos + count), count)));
+            pos += count;
+        }
+        assertEquals(sent, received);
+    }
+
+    @Test
+    public void roundTrip_mergedReads() throws IOException {
+        List<String> sent = new ArrayList<>();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        writeSensorStream(new DeltaCodec.Encoder(), new Random(2), 300, sent, wire);
+
+        // all frames in a single read:
+        byte[] bytes = wire.toByteArray();
+        List<String> received = toStrings(new DeltaCodec.Decoder().feed(bytes, bytes.length));
+        assertEquals(sent, received);
+    }
+
+    @Test
+    public void deltas_areSmallerThanSnapshots() throws IOException {
+        List<String> sent = new ArrayList<>();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        writeSensorStream(new DeltaCodec.Encoder(), new Random(3), 2000, sent, wire);
+        long raw = 0;
+        for (String message : sent) {
+            raw += message.length();
+        }
+        assertTrue("wire bytes: " + wire.size() + ", raw bytes: " + raw, wire.size() * 3 < raw);
+    }
+
+    @Test
+    public void keyframe_everyInterval() {
+        DeltaCodec.Encoder encoder = new DeltaCodec.Encoder(5);
+        String snapshot = "{\"temperature\":20,\"humidity\":40,\"pressure\":1013}";
+        for (int i = 0; i < 20; i++) {
+            snapshot = snapshot.replaceFirst("\"temperature\":\\d+", "\"temperature\":" + (20 + i % 10));
+            byte type = frameType(encoder.encode("sensor", snapshot.getBytes(UTF8)));
+            assertEquals("message " + i, i % 5 == 0 ? 'K' : 'D', type);
+        }
+    }
+
+    @Test
+    public void keyframe_perStream() {
+        DeltaCodec.Encoder encoder = new DeltaCodec.Encoder();
+        byte[] snapshot = "{\"value\":1,\"name\":\"sensor\"}".getBytes(UTF8);
+        assertEquals('K', frameType(encoder.encode("a", snapshot)));
+        assertEquals('K', frameType(encoder.encode("b", snapshot)));
+        assertEquals('D', frameType(encoder.encode("a", "{\"value\":2,\"name\":\"sensor\"}".getBytes(UTF8))));
+    }
+
+    @Test
+    public void truncatedFrame_waitsForRest() throws IOException {
+        byte[] frame = new DeltaCodec.Encoder().encode("", "hello world".getBytes(UTF8));
+        DeltaCodec.Decoder decoder = new DeltaCodec.Decoder();
+        feed(decoder, DeltaCodec.hello());
+        assertTrue(decoder.feed(frame, frame.length - 3).isEmpty());
+        byte[] rest = Arrays.copyOfRange(frame, frame.length - 3, frame.length);
+        assertEquals(Arrays.asList("hello world"), toStrings(decoder.feed(rest, rest.length)));
+    }
+
+    @Test(expected = IOException.class)
+    public void missingHello_fails() throws IOException {
+        byte[] frame = new DeltaCodec.Encoder().encode("", "plain".getBytes(UTF8));
+        feed(new DeltaCodec.Decoder(), frame);
+    }
+
+    @Test(expected = IOException.class)
+    public void plainText_fails() throws IOException {
+        feed(new DeltaCodec.Decoder(), "plain text message".getBytes(UTF8));
+    }
+
+    @Test(expected = IOException.class)
+    public void versionMismatch_fails() throws IOException {
+        byte[] hello = DeltaCodec.hello();
+        hello[hello.length - 1] = (byte) (DeltaCodec.VERSION + 1);
+        feed(new DeltaCodec.Decoder(), hello);
+    }
+
+    @Test
+    public void isHello_detectsDeltaMode() {
+        byte[] hello = DeltaCodec.hello();
+        assertTrue(DeltaCodec.isHello(hello, hello.length));
+        byte[] text = "BPD1 text".getBytes(UTF8);
+        assertFalse(DeltaCodec.isHello(text, text.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownFrameType_fails() throws IOException {
+        DeltaCodec.Decoder decoder = new DeltaCodec.Decoder();
+        feed(decoder, DeltaCodec.hello());
+        feed(decoder, new byte[]{2, 'X', 0});
+    }
+
+    @Test(expected = IOException.class)
+    public void deltaWithoutKeyframe_fails() throws IOException {
+        DeltaCodec.Encoder encoder = new DeltaCodec.Encoder();
+        encoder.encode("s", "{\"value\":1,\"name\":\"sensor\"}".getBytes(UTF8));
+        byte[] delta = encoder.encode("s", "{\"value\":2,\"name\":\"sensor\"}".getBytes(UTF8));
+        assertEquals('D', frameType(delta));
+        DeltaCodec.Decoder decoder = new DeltaCodec.Decoder();
+        feed(decoder, DeltaCodec.hello());
+        feed(decoder, delta);
+    }
+
+    @Test(expected = IOException.class)
+    public void frameTooBig_fails() throws IOException {
+        DeltaCodec.Decoder decoder = new DeltaCodec.Decoder();
+        feed(decoder, DeltaCodec.hello());
+        feed(decoder, new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01}); // body length 2^21
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptDeltaOp_fails() throws IOException {
+        DeltaCodec.Decoder decoder = new DeltaCodec.Decoder();
+        feed(decoder, DeltaCodec.hello());
+        feed(decoder, new DeltaCodec.Encoder().encode("", "abc".getBytes(UTF8)));
+        // delta for stream "": 1 op, offset 0, old length 10 (more than "abc"), new length 0:
+        feed(decoder, new byte[]{6, 'D', 0, 1, 0, 10, 0});
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedDeltaBody_fails() throws IOException {
+        DeltaCodec.Decoder decoder = new DeltaCodec.Decoder();
+        feed(decoder, DeltaCodec.hello());
+        feed(decoder, new DeltaCodec.Encoder().encode("", "abc".getBytes(UTF8)));
+        // delta body ends inside the op (new length 5, but no new bytes):
+        feed(decoder, new byte[]{6, 'D', 0, 1, 0, 1, 5});
+    }
+
+    // encode a JSON-like sensor stream (2 streams, small changes, sometimes different length):
+    private static void writeSensorStream(DeltaCodec.Encoder encoder, Random random, int messages,
+                                          List<String> sent, ByteArrayOutputStream wire) throws IOException {
+        wire.write(DeltaCodec.hello());
+        String snapshot = "{\"t\":12.5,\"h\":40,\"p\":1013,\"name\":\"sensor-a\",\"x\":0}";
+        for (int i = 0; i < messages; i++) {
+            snapshot = snapshot.replaceFirst("\"h\":\\d+", "\"h\":" + random.nextInt(100));
+            if (random.nextInt(10) == 0) {
+                snapshot = snapshot.replaceFirst("\"x\":\\d+", "\"x\":" + random.nextInt(100000));
+            }
+            sent.add(snapshot);
+            wire.write(encoder.encode(i % 3 == 0 ? "a" : "b", snapshot.getBytes(UTF8)));
+        }
+    }
+
+    private static List<byte[]> feed(DeltaCodec.Decoder decoder, byte[] bytes) throws IOException {
+        return decoder.feed(bytes, bytes.length);
+    }
+
+    private static List<String> toStrings(List<byte[]> snapshots) {
+        List<String> strings = new ArrayList<>();
+        for (byte[] snapshot : snapshots) {
+            strings.add(new String(snapshot, UTF8));
+        }
+        return strings;
+    }
+
+    // type byte of a frame (after the varint body length):
+    private static byte frameType(byte[] frame) {
+        int pos = 0;
+        while ((frame[pos] & 0x80) != 0) {
+            pos++;
+        }
+        return frame[pos + 1];
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.BluetoothPack;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for OutboundQueue (FIFO order, latest-value-wins keys, deadlines, counters).
+ */
+public class OutboundQueueTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long NOW = 1000;
+
+    @Test
+    public void withoutKey_fifoOrder() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(bytes("a"), null, OutboundQueue.NO_DEADLINE);
+        queue.offer(bytes("b"), null, OutboundQueue.NO_DEADLINE);
+        queue.offer(bytes("a"), null, OutboundQueue.NO_DEADLINE);
+        assertEquals("a", pollString(queue));
+        assertEquals("b", pollString(queue));
+        assertEquals("a", pollString(queue));
+        assertNull(queue.poll(NOW));
+        assertEquals(0, queue.getReplacedCount());
+    }
+
+    @Test
+    public void sameKey_replacedInPlace() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(bytes("temp=1"), "temp", OutboundQueue.NO_DEADLINE);
+        queue.offer(bytes("chat"), null, OutboundQueue.NO_DEADLINE);
+        queue.offer(bytes("hum=5"), "hum", OutboundQueue.NO_DEADLINE);
+        queue.offer(bytes("temp=2"), "temp", OutboundQueue.NO_DEADLINE);
+        queue.offer(bytes("temp=3"), "temp", OutboundQueue.NO_DEADLINE);
+        // newest value takes the position of the first queued one:
+        assertEquals("temp=3", pollString(queue));
+        assertEquals("chat", pollString(queue));
+        assertEquals("hum=5", pollString(queue));
+        assertNull(queue.poll(NOW));
+        assertEquals(2, queue.getReplacedCount());
+    }
+
+    @Test
+    public void sameKey_afterPoll_isQueuedAgain() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(bytes("temp=1"), "temp", OutboundQueue.NO_DEADLINE);
+        assertEquals("temp=1", pollString(queue));
+        queue.offer(bytes("temp=2"), "temp", OutboundQueue.NO_DEADLINE);
+        assertEquals("temp=2", pollString(queue));
+        assertEquals(0, queue.getReplacedCount());
+    }
+
+    @Test
+    public void expired_droppedAtPoll() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(bytes("old"), null, NOW - 1);
+        queue.offer(bytes("in time"), null, NOW);
+        queue.offer(bytes("old key"), "k", NOW - 500);
+        queue.offer(bytes("no deadline"), null, OutboundQueue.NO_DEADLINE);
+        assertEquals("in time", pollString(queue));     // deadline == now is still in time
+        assertEquals("no deadline", pollString(queue));
+        assertNull(queue.poll(NOW));
+        assertEquals(2, queue.getExpiredCount());
+    }
+
+    @Test
+    public void replacement_updatesDeadline() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(bytes("temp=1"), "temp", NOW - 1);
+        queue.offer(bytes("temp=2"), "temp", NOW + 1000);
+        assertEquals("temp=2", pollString(queue));
+        assertEquals(0, queue.getExpiredCount());
+    }
+
+    @Test
+    public void clear_countsDropped() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(bytes("a"), null, OutboundQueue.NO_DEADLINE);
+        queue.offer(bytes("b"), "k", OutboundQueue.NO_DEADLINE);
+        queue.offer(bytes("c"), "k", OutboundQueue.NO_DEADLINE);  // replaced, not dropped
+        queue.clear();
+        assertNull(queue.poll(NOW));
+        assertEquals(2, queue.getDroppedCount());
+        queue.countDropped();
+        assertEquals(3, queue.getDroppedCount());
+        // key is free again after clear:
+        queue.offer(bytes("d"), "k", OutboundQueue.NO_DEADLINE);
+        assertEquals("d", pollString(queue));
+        assertEquals(1, queue.getReplacedCount());
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(UTF8);
+    }
+
+    private static String pollString(OutboundQueue queue) {
+        OutboundQueue.Entry entry = queue.poll(NOW);
+        assertNotNull(entry);
+        return new String(entry.bytes, UTF8);
+    }
+}